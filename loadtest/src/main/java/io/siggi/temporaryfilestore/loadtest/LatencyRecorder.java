@@ -0,0 +1,59 @@
+package io.siggi.temporaryfilestore.loadtest;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class LatencyRecorder {
+    private final String name;
+    private long[] latencies = new long[1024];
+    private int count = 0;
+    private long errors = 0L;
+    private long bytes = 0L;
+    private final Map<Integer, Long> statuses = new TreeMap<>();
+
+    public LatencyRecorder(String name) {
+        this.name = name;
+    }
+
+    public void record(long nanos, int status, long bytes) {
+        synchronized (this) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, latencies.length * 2);
+            }
+            latencies[count++] = nanos;
+            this.bytes += bytes;
+            statuses.merge(status, 1L, Long::sum);
+        }
+    }
+
+    public void recordError() {
+        synchronized (this) {
+            errors += 1L;
+        }
+    }
+
+    public String report(long elapsedNanos) {
+        synchronized (this) {
+            double seconds = (double) elapsedNanos / 1000000000.0;
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            return String.format("%-12s %8d ops %8.1f ops/s %10.2f MB/s  p50 %8.2f ms  p99 %8.2f ms  p999 %8.2f ms  errors %d  statuses %s",
+                name, count, count / seconds, bytes / seconds / 1048576.0,
+                percentile(sorted, 0.5), percentile(sorted, 0.99), percentile(sorted, 0.999),
+                errors, statuses);
+        }
+    }
+
+    public boolean isEmpty() {
+        synchronized (this) {
+            return count == 0 && errors == 0L;
+        }
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) return 0.0;
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return (double) sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1000000.0;
+    }
+}
@@ -0,0 +1,310 @@
+package io.siggi.temporaryfilestore.loadtest;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import io.siggi.temporaryfilestore.TemporaryFileStore;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import static io.siggi.temporaryfilestore.Util.gson;
+
+/**
+ * Drives a mix of concurrent load against a TemporaryFileStore, either one started in this process or an existing
+ * server, and reports throughput and latency percentiles for each kind of request.
+ * <p>
+ * Configured with system properties:
+ * <ul>
+ * <li>url - server to test, if not set a server is started in-process with a temporary data directory</li>
+ * <li>duration - seconds to run for (default 30)</li>
+ * <li>uploaders - concurrent uploaders doing /preupload then /upload (default 8)</li>
+ * <li>uploadSize - bytes per upload (default 1048576)</li>
+ * <li>uploadSpeed - bytes per second per uploader, 0 for unlimited (default 0)</li>
+ * <li>readersPerUpload - full downloads started while each upload is in progress (default 2)</li>
+ * <li>rangeReadersPerUpload - Range downloads started while each upload is in progress (default 1)</li>
+ * <li>listers - concurrent clients repeatedly requesting /uploads (default 0)</li>
+ * <li>scrapers - concurrent clients requesting random file IDs (default 0)</li>
+ * </ul>
+ * Scrapers trip the anti-scrape limit for the load generator's IP address, so downloads from the same run will start
+ * getting 429 responses. Run them on their own to measure the cost of 404 floods.
+ */
+public class LoadTest {
+    public static void main(String[] args) throws Exception {
+        String url = System.getProperty("url");
+        TemporaryFileStore server = null;
+        if (url == null) {
+            int port;
+            try (ServerSocket socket = new ServerSocket(0)) {
+                port = socket.getLocalPort();
+            }
+            File dataRoot = Files.createTempDirectory("TemporaryFileStore-LoadTest").toFile();
+            server = new TemporaryFileStore(port, dataRoot);
+            server.start();
+            url = "http://127.0.0.1:" + port;
+            System.out.println("Started in-process server at " + url + " with data in " + dataRoot.getAbsolutePath());
+        }
+        if (url.endsWith("/")) url = url.substring(0, url.length() - 1);
+        LoadTest loadTest = new LoadTest(
+            url,
+            getLong("duration", 30L) * 1000000000L,
+            (int) getLong("uploaders", 8L),
+            getLong("uploadSize", 1048576L),
+            getLong("uploadSpeed", 0L),
+            (int) getLong("readersPerUpload", 2L),
+            (int) getLong("rangeReadersPerUpload", 1L),
+            (int) getLong("listers", 0L),
+            (int) getLong("scrapers", 0L)
+        );
+        loadTest.run();
+        if (server != null) {
+            server.stop();
+        }
+        System.exit(0);
+    }
+
+    private final String url;
+    private final long duration;
+    private final int uploaders;
+    private final long uploadSize;
+    private final long uploadSpeed;
+    private final int readersPerUpload;
+    private final int rangeReadersPerUpload;
+    private final int listers;
+    private final int scrapers;
+
+    private final HttpClient client;
+    private final ExecutorService readerExecutor = Executors.newCachedThreadPool();
+    private final List<String> tokens = new CopyOnWriteArrayList<>();
+    private long deadline;
+
+    private final LatencyRecorder preuploadLatency = new LatencyRecorder("preupload");
+    private final LatencyRecorder uploadLatency = new LatencyRecorder("upload");
+    private final LatencyRecorder readLatency = new LatencyRecorder("read");
+    private final LatencyRecorder firstByteLatency = new LatencyRecorder("read-ttfb");
+    private final LatencyRecorder rangeLatency = new LatencyRecorder("read-range");
+    private final LatencyRecorder listLatency = new LatencyRecorder("uploads");
+    private final LatencyRecorder pollLatency = new LatencyRecorder("uploads-poll");
+    private final LatencyRecorder scrapeLatency = new LatencyRecorder("scrape");
+
+    public LoadTest(String url, long duration, int uploaders, long uploadSize, long uploadSpeed, int readersPerUpload, int rangeReadersPerUpload, int listers, int scrapers) {
+        this.url = url;
+        this.duration = duration;
+        this.uploaders = uploaders;
+        this.uploadSize = uploadSize;
+        this.uploadSpeed = uploadSpeed;
+        this.readersPerUpload = readersPerUpload;
+        this.rangeReadersPerUpload = rangeReadersPerUpload;
+        this.listers = listers;
+        this.scrapers = scrapers;
+        this.client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(10L))
+            .executor(Executors.newCachedThreadPool())
+            .build();
+    }
+
+    public void run() throws InterruptedException {
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < uploaders; i++) threads.add(new Thread(this::uploaderLoop, "Uploader-" + i));
+        for (int i = 0; i < listers; i++) threads.add(new Thread(this::listerLoop, "Lister-" + i));
+        for (int i = 0; i < scrapers; i++) threads.add(new Thread(this::scraperLoop, "Scraper-" + i));
+        long start = System.nanoTime();
+        deadline = start + duration;
+        for (Thread thread : threads) thread.start();
+        for (Thread thread : threads) thread.join();
+        readerExecutor.shutdown();
+        readerExecutor.awaitTermination(60L, TimeUnit.SECONDS);
+        long elapsed = System.nanoTime() - start;
+        System.out.println("Ran for " + (elapsed / 1000000L) + " ms against " + url);
+        for (LatencyRecorder recorder : new LatencyRecorder[]{preuploadLatency, uploadLatency, readLatency, firstByteLatency, rangeLatency, listLatency, pollLatency, scrapeLatency}) {
+            if (!recorder.isEmpty()) {
+                System.out.println(recorder.report(elapsed));
+            }
+        }
+    }
+
+    private boolean running() {
+        return System.nanoTime() < deadline;
+    }
+
+    private void uploaderLoop() {
+        String token = null;
+        while (running()) {
+            try {
+                long start = System.nanoTime();
+                HttpRequest.Builder preuploadBuilder = HttpRequest.newBuilder(URI.create(url + "/preupload"))
+                    .header("Content-Type", "application/x-www-form-urlencoded")
+                    .POST(HttpRequest.BodyPublishers.ofString("size=" + uploadSize));
+                if (token != null) preuploadBuilder.header("Cookie", "token=" + token);
+                HttpResponse<String> preuploadResponse = client.send(preuploadBuilder.build(), HttpResponse.BodyHandlers.ofString());
+                preuploadLatency.record(System.nanoTime() - start, preuploadResponse.statusCode(), 0L);
+                JsonObject preupload = gson.fromJson(preuploadResponse.body(), JsonObject.class);
+                if (!preupload.get("success").getAsBoolean()) {
+                    preuploadLatency.recordError();
+                    continue;
+                }
+                if (token == null) {
+                    token = preupload.get("token").getAsString();
+                    tokens.add(token);
+                }
+                String fileId = preupload.get("fileId").getAsString();
+
+                MultipartUploadStream body = new MultipartUploadStream(fileId, uploadSize, uploadSpeed);
+                HttpRequest uploadRequest = HttpRequest.newBuilder(URI.create(url + "/upload"))
+                    .header("Content-Type", MultipartUploadStream.getContentType())
+                    .header("Cookie", "token=" + token)
+                    .POST(HttpRequest.BodyPublishers.fromPublisher(HttpRequest.BodyPublishers.ofInputStream(() -> body), body.getLength()))
+                    .build();
+                start = System.nanoTime();
+                CompletableFuture<HttpResponse<String>> upload = client.sendAsync(uploadRequest, HttpResponse.BodyHandlers.ofString());
+                // readers only start once the server lists the file in /uploads, a lookup of a file that doesn't
+                // exist yet would count against the anti-scrape limit and get every later download a 429, the polls
+                // have their own recorder so they show up in the report instead of skewing it unseen
+                boolean available = false;
+                while (!upload.isDone()) {
+                    if (isListed(token, fileId)) {
+                        available = true;
+                        break;
+                    }
+                    Thread.sleep(100L);
+                }
+                HttpResponse<String> uploadResponse = null;
+                if (!available) {
+                    uploadResponse = upload.get();
+                    available = uploadResponse.statusCode() == 200;
+                }
+                if (available) {
+                    for (int i = 0; i < readersPerUpload; i++) {
+                        readerExecutor.execute(() -> read(fileId, false));
+                    }
+                    for (int i = 0; i < rangeReadersPerUpload; i++) {
+                        readerExecutor.execute(() -> read(fileId, true));
+                    }
+                }
+                if (uploadResponse == null) uploadResponse = upload.get();
+                uploadLatency.record(System.nanoTime() - start, uploadResponse.statusCode(), uploadSize);
+            } catch (InterruptedException e) {
+                break;
+            } catch (Exception e) {
+                uploadLatency.recordError();
+            }
+        }
+    }
+
+    private boolean isListed(String token, String fileId) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(url + "/uploads"))
+            .header("Content-Type", "application/x-www-form-urlencoded")
+            .header("Cookie", "token=" + token)
+            .POST(HttpRequest.BodyPublishers.ofString("limit=1&order=desc"))
+            .build();
+        long start = System.nanoTime();
+        HttpResponse<String> response;
+        try {
+            response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        } catch (IOException e) {
+            pollLatency.recordError();
+            throw e;
+        }
+        pollLatency.record(System.nanoTime() - start, response.statusCode(), response.body().length());
+        if (response.statusCode() != 200) return false;
+        for (JsonElement element : gson.fromJson(response.body(), JsonArray.class)) {
+            if (fileId.equals(element.getAsJsonObject().get("fileId").getAsString())) return true;
+        }
+        return false;
+    }
+
+    private void read(String fileId, boolean range) {
+        LatencyRecorder recorder = range ? rangeLatency : readLatency;
+        try {
+            HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(url + "/" + fileId)).GET();
+            if (range) {
+                long rangeStart = ThreadLocalRandom.current().nextLong(Math.max(1L, Math.min(uploadSize, 65536L)));
+                long rangeEnd = Math.min(uploadSize - 1L, rangeStart + ThreadLocalRandom.current().nextLong(1L, uploadSize + 1L));
+                builder.header("Range", "bytes=" + rangeStart + "-" + rangeEnd);
+            }
+            long start = System.nanoTime();
+            HttpResponse<InputStream> response = client.send(builder.build(), HttpResponse.BodyHandlers.ofInputStream());
+            if (!range) {
+                firstByteLatency.record(System.nanoTime() - start, response.statusCode(), 0L);
+            }
+            long bytes = drain(response.body());
+            recorder.record(System.nanoTime() - start, response.statusCode(), bytes);
+        } catch (Exception e) {
+            recorder.recordError();
+        }
+    }
+
+    private void listerLoop() {
+        while (running()) {
+            String token = tokens.isEmpty() ? null : tokens.get(ThreadLocalRandom.current().nextInt(tokens.size()));
+            try {
+                HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(url + "/uploads"))
+                    .header("Content-Type", "application/x-www-form-urlencoded")
+                    .POST(HttpRequest.BodyPublishers.ofString("limit=50&order=desc"));
+                if (token != null) builder.header("Cookie", "token=" + token);
+                long start = System.nanoTime();
+                HttpResponse<InputStream> response = client.send(builder.build(), HttpResponse.BodyHandlers.ofInputStream());
+                long bytes = drain(response.body());
+                listLatency.record(System.nanoTime() - start, response.statusCode(), bytes);
+            } catch (InterruptedException e) {
+                break;
+            } catch (Exception e) {
+                listLatency.recordError();
+            }
+        }
+    }
+
+    private void scraperLoop() {
+        Random random = new Random();
+        while (running()) {
+            try {
+                String fileId = Integer.toString(100000000 + random.nextInt(900000000));
+                HttpRequest request = HttpRequest.newBuilder(URI.create(url + "/" + fileId)).GET().build();
+                long start = System.nanoTime();
+                HttpResponse<InputStream> response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+                long bytes = drain(response.body());
+                scrapeLatency.record(System.nanoTime() - start, response.statusCode(), bytes);
+            } catch (InterruptedException e) {
+                break;
+            } catch (Exception e) {
+                scrapeLatency.recordError();
+            }
+        }
+    }
+
+    private static long drain(InputStream in) throws IOException {
+        try (InputStream stream = in) {
+            byte[] buffer = new byte[65536];
+            long total = 0L;
+            int c;
+            while ((c = stream.read(buffer, 0, buffer.length)) != -1) {
+                total += c;
+            }
+            return total;
+        }
+    }
+
+    private static long getLong(String property, long defaultValue) {
+        try {
+            return Long.parseLong(System.getProperty(property));
+        } catch (Exception e) {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package io.siggi.temporaryfilestore.loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Generates a multipart/form-data upload body of a given size without holding it in memory, optionally limited to a
+ * number of bytes per second to simulate slow uploaders.
+ */
+public class MultipartUploadStream extends InputStream {
+    public static final String BOUNDARY = "----TemporaryFileStoreLoadTest";
+
+    private final byte[] header;
+    private final byte[] trailer;
+    private final long fileSize;
+    private final long bytesPerSecond;
+    private final long length;
+    private long position = 0L;
+    private long startTime = -1L;
+
+    public MultipartUploadStream(String fileId, long fileSize, long bytesPerSecond) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("--").append(BOUNDARY).append("\r\n");
+        sb.append("Content-Disposition: form-data; name=\"json\"\r\n\r\n1\r\n");
+        if (fileId != null) {
+            sb.append("--").append(BOUNDARY).append("\r\n");
+            sb.append("Content-Disposition: form-data; name=\"fileId\"\r\n\r\n").append(fileId).append("\r\n");
+        }
+        sb.append("--").append(BOUNDARY).append("\r\n");
+        sb.append("Content-Disposition: form-data; name=\"file\"; filename=\"loadtest.bin\"\r\n");
+        sb.append("Content-Type: application/octet-stream\r\n\r\n");
+        this.header = sb.toString().getBytes(StandardCharsets.UTF_8);
+        this.trailer = ("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8);
+        this.fileSize = fileSize;
+        this.bytesPerSecond = bytesPerSecond;
+        this.length = header.length + fileSize + trailer.length;
+    }
+
+    public static String getContentType() {
+        return "multipart/form-data; boundary=" + BOUNDARY;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int c = read(b, 0, 1);
+        return c <= 0 ? -1 : (b[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int len) throws IOException {
+        if (len == 0) return 0;
+        long pos = position;
+        if (pos >= length) return -1;
+        len = (int) Math.min(Math.min(len, throttle()), length - pos);
+        long payloadEnd = header.length + fileSize;
+        for (int i = 0; i < len; ) {
+            long p = pos + i;
+            int chunk;
+            if (p < header.length) {
+                chunk = (int) Math.min(len - i, header.length - p);
+                System.arraycopy(header, (int) p, buffer, offset + i, chunk);
+            } else if (p < payloadEnd) {
+                chunk = (int) Math.min(len - i, payloadEnd - p);
+                for (int j = 0; j < chunk; j++) {
+                    buffer[offset + i + j] = (byte) (p + j);
+                }
+            } else {
+                chunk = len - i;
+                System.arraycopy(trailer, (int) (p - payloadEnd), buffer, offset + i, chunk);
+            }
+            i += chunk;
+        }
+        position = pos + len;
+        return len;
+    }
+
+    private long throttle() throws IOException {
+        if (bytesPerSecond <= 0L) return Long.MAX_VALUE;
+        long now = System.nanoTime();
+        if (startTime == -1L) startTime = now;
+        while (true) {
+            long allowed = (long) ((double) (now - startTime) / 1000000000.0 * (double) bytesPerSecond) + 4096L;
+            long available = allowed - position;
+            if (available > 0L) return available;
+            try {
+                Thread.sleep(10L);
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted", e);
+            }
+            now = System.nanoTime();
+        }
+    }
+}
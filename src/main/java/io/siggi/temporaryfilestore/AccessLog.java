@@ -0,0 +1,225 @@
+package io.siggi.temporaryfilestore;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Access log that never blocks request threads. Records are copied into a preallocated ring buffer and written to disk
+ * in batches by a single writer thread. When the buffer is full, records are dropped and counted instead.
+ */
+public class AccessLog {
+    private final File logDir;
+    private final long maxFileSize;
+    private final long rotateInterval;
+    private final int maxFiles;
+
+    private final Record[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private long head = 0L;
+    private final AtomicLong dropped = new AtomicLong();
+
+    private Thread writerThread = null;
+    private volatile boolean running = false;
+
+    private Writer writer = null;
+    private File currentFile = null;
+    private long currentFileSize = 0L;
+    private long currentFileOpened = 0L;
+    private final SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+    private final SimpleDateFormat fileNameFormat = new SimpleDateFormat("yyyyMMdd-HHmmss");
+    private final StringBuilder line = new StringBuilder(256);
+
+    public AccessLog(File logDir, int capacity, long maxFileSize, long rotateInterval, int maxFiles) {
+        if (Integer.bitCount(capacity) != 1) throw new IllegalArgumentException("Capacity must be a power of 2");
+        this.logDir = logDir;
+        this.maxFileSize = maxFileSize;
+        this.rotateInterval = rotateInterval;
+        this.maxFiles = maxFiles;
+        this.slots = new Record[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        this.mask = capacity - 1;
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Record();
+            sequences.set(i, i);
+        }
+        TimeZone utc = TimeZone.getTimeZone("UTC");
+        timeFormat.setTimeZone(utc);
+        fileNameFormat.setTimeZone(utc);
+    }
+
+    public void start() {
+        if (writerThread != null) throw new IllegalStateException("Already started");
+        if (!logDir.exists()) {
+            logDir.mkdirs();
+        }
+        running = true;
+        writerThread = new Thread(this::writerLoop, "AccessLog");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    public void log(String route, String fileId, String ip, UUID deviceUuid, long bytes, int status, long duration) {
+        if (!running) return;
+        Record record;
+        long pos;
+        while (true) {
+            pos = tail.get();
+            int index = (int) (pos & mask);
+            long diff = sequences.get(index) - pos;
+            if (diff == 0L) {
+                if (tail.compareAndSet(pos, pos + 1L)) {
+                    record = slots[index];
+                    break;
+                }
+            } else if (diff < 0L) {
+                dropped.incrementAndGet();
+                return;
+            }
+        }
+        record.time = System.currentTimeMillis();
+        record.route = route;
+        record.fileId = fileId;
+        record.ip = ip;
+        record.deviceUuid = deviceUuid;
+        record.bytes = bytes;
+        record.status = status;
+        record.duration = duration;
+        sequences.lazySet((int) (pos & mask), pos + 1L);
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Stop accepting records and wait up to the given time for the buffered records to be written.
+     */
+    public void stop(long timeout, TimeUnit unit) {
+        if (writerThread == null) return;
+        running = false;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join(unit.toMillis(timeout));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writerLoop() {
+        long reportedDropped = 0L;
+        while (true) {
+            boolean stopping = !running;
+            int written = 0;
+            try {
+                written = drain();
+                long droppedNow = dropped.get();
+                if (droppedNow != reportedDropped) {
+                    writeLine("# dropped " + (droppedNow - reportedDropped) + " records\n");
+                    reportedDropped = droppedNow;
+                }
+                if (writer != null) writer.flush();
+            } catch (IOException e) {
+                closeWriter();
+            }
+            if (stopping) break;
+            if (written == 0) {
+                LockSupport.parkNanos(200000000L);
+            }
+        }
+        closeWriter();
+    }
+
+    private int drain() throws IOException {
+        int count = 0;
+        while (true) {
+            int index = (int) (head & mask);
+            if (sequences.get(index) != head + 1L) break;
+            Record record = slots[index];
+            line.setLength(0);
+            line.append(timeFormat.format(new Date(record.time))).append('\t')
+                .append(record.route).append('\t')
+                .append(record.fileId == null ? "-" : record.fileId).append('\t')
+                .append(record.ip).append('\t')
+                .append(record.deviceUuid == null ? "-" : record.deviceUuid.toString()).append('\t')
+                .append(record.bytes < 0L ? "-" : Long.toString(record.bytes)).append('\t')
+                .append(record.status < 0 ? "-" : Integer.toString(record.status)).append('\t')
+                .append(record.duration).append('\n');
+            record.route = null;
+            record.fileId = null;
+            record.ip = null;
+            record.deviceUuid = null;
+            sequences.lazySet(index, head + mask + 1L);
+            head += 1L;
+            writeLine(line);
+            count += 1;
+        }
+        return count;
+    }
+
+    private void writeLine(CharSequence text) throws IOException {
+        long now = System.currentTimeMillis();
+        if (writer == null || currentFileSize >= maxFileSize || now - currentFileOpened >= rotateInterval) {
+            rotate(now);
+        }
+        writer.append(text);
+        currentFileSize += text.length();
+    }
+
+    private void rotate(long now) throws IOException {
+        closeWriter();
+        String baseName = "access-" + fileNameFormat.format(new Date(now));
+        File file = new File(logDir, baseName + ".log");
+        for (int i = 1; file.exists(); i++) {
+            file = new File(logDir, baseName + "-" + i + ".log");
+        }
+        currentFile = file;
+        writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 65536);
+        currentFileSize = 0L;
+        currentFileOpened = now;
+        File[] logFiles = logDir.listFiles((dir, name) -> name.startsWith("access-") && name.endsWith(".log"));
+        if (logFiles != null && logFiles.length > maxFiles) {
+            Arrays.sort(logFiles, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+            for (int i = 0; i < logFiles.length - maxFiles; i++) {
+                if (!logFiles[i].equals(currentFile)) {
+                    logFiles[i].delete();
+                }
+            }
+        }
+    }
+
+    private void closeWriter() {
+        if (writer == null) return;
+        try {
+            writer.close();
+        } catch (IOException e) {
+        }
+        writer = null;
+    }
+
+    private static class Record {
+        private long time;
+        private String route;
+        private String fileId;
+        private String ip;
+        private UUID deviceUuid;
+        private long bytes;
+        private int status;
+        private long duration;
+    }
+}
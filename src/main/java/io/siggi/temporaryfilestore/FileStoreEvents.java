@@ -0,0 +1,127 @@
+package io.siggi.temporaryfilestore;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events for the main operations of the file store. Events that aren't enabled in the running
+ * recording cost next to nothing, so they can be left in place for continuous recordings in production.
+ */
+final class FileStoreEvents {
+    private static final String CATEGORY = "TemporaryFileStore";
+
+    private FileStoreEvents() {
+    }
+
+    @Name("io.siggi.temporaryfilestore.Upload")
+    @Label("Upload")
+    @Description("A file part being received and written to storage")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class UploadEvent extends Event {
+        @Label("File ID")
+        String fileId;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("io.siggi.temporaryfilestore.Download")
+    @Label("Download")
+    @Description("A stored file being sent to a client")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class DownloadEvent extends Event {
+        @Label("File ID")
+        String fileId;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Bytes Known")
+        @Description("False for Range requests sent by the HTTP server, which doesn't report how much it wrote")
+        boolean bytesKnown;
+
+        @Label("Streamed While Uploading")
+        boolean streamed;
+
+        @Label("Waits For Data")
+        int waits;
+
+        @Label("Time Waiting For Data")
+        @Timespan
+        long waitTime;
+
+        @Label("Time Reading From Disk")
+        @Timespan
+        long readTime;
+
+        @Label("Time Writing To Client")
+        @Timespan
+        long writeTime;
+    }
+
+    @Name("io.siggi.temporaryfilestore.WaitForData")
+    @Label("Wait For Upload Data")
+    @Description("A download waiting for an in-progress upload to provide more data")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class WaitForDataEvent extends Event {
+        @Label("File ID")
+        String fileId;
+
+        @Label("Available Data")
+        @DataAmount
+        long availableData;
+    }
+
+    @Name("io.siggi.temporaryfilestore.MetadataRead")
+    @Label("Metadata Read")
+    @Description("A file's metadata being read from storage")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class MetadataReadEvent extends Event {
+        @Label("File ID")
+        String fileId;
+
+        @Label("Found")
+        boolean found;
+    }
+
+    @Name("io.siggi.temporaryfilestore.AntiScrape")
+    @Label("Anti-Scrape Decision")
+    @Description("A download request being checked against the failed lookup limit")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class AntiScrapeEvent extends Event {
+        @Label("IP Address")
+        String ip;
+
+        @Label("Fail Count")
+        long failCount;
+
+        @Label("Blocked")
+        boolean blocked;
+    }
+
+    @Name("io.siggi.temporaryfilestore.Cleanup")
+    @Label("Cleanup Pass")
+    @Description("A pass deleting expired, abandoned or evicted files")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class CleanupEvent extends Event {
+        @Label("Kind")
+        String kind;
+
+        @Label("Files Deleted")
+        int filesDeleted;
+    }
+}
@@ -0,0 +1,99 @@
+package io.siggi.temporaryfilestore;
+
+public class RetentionPolicy {
+    public enum EvictionOrder {
+        OLDEST,
+        LARGEST,
+        LEAST_RECENTLY_DOWNLOADED
+    }
+
+    public final long defaultLifetime;
+    public final long minLifetime;
+    public final long maxLifetime;
+    // maximum bytes to store, 0 turns off eviction and shortened lifetimes, -1 measures usage of the whole disk
+    public final long storageLimit;
+    // above the low watermark new uploads get shorter lifetimes and enough stored files to get back down to it have
+    // their expiry shortened to match, above the high watermark completed files are evicted right away until usage is
+    // back down to the low watermark
+    public final double highWatermark;
+    public final double lowWatermark;
+    public final EvictionOrder evictionOrder;
+
+    public RetentionPolicy() {
+        this(48L * 3600000L, 3600000L, 48L * 3600000L, 0L, 0.9, 0.8, EvictionOrder.OLDEST);
+    }
+
+    public RetentionPolicy(long defaultLifetime, long minLifetime, long maxLifetime, long storageLimit, double highWatermark, double lowWatermark, EvictionOrder evictionOrder) {
+        if (minLifetime <= 0L || maxLifetime < minLifetime)
+            throw new IllegalArgumentException("Invalid lifetime bounds");
+        if (lowWatermark <= 0.0 || highWatermark > 1.0 || lowWatermark >= highWatermark)
+            throw new IllegalArgumentException("Invalid watermarks");
+        this.defaultLifetime = Math.max(minLifetime, Math.min(maxLifetime, defaultLifetime));
+        this.minLifetime = minLifetime;
+        this.maxLifetime = maxLifetime;
+        this.storageLimit = storageLimit;
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+        this.evictionOrder = evictionOrder;
+    }
+
+    public static RetentionPolicy fromSystemProperties() {
+        RetentionPolicy defaults = new RetentionPolicy();
+        return new RetentionPolicy(
+            getLong("defaultLifetime", defaults.defaultLifetime / 1000L) * 1000L,
+            getLong("minLifetime", defaults.minLifetime / 1000L) * 1000L,
+            getLong("maxLifetime", defaults.maxLifetime / 1000L) * 1000L,
+            getLong("storageLimit", defaults.storageLimit),
+            getDouble("highWatermark", defaults.highWatermark),
+            getDouble("lowWatermark", defaults.lowWatermark),
+            EvictionOrder.valueOf(System.getProperty("evictionOrder", defaults.evictionOrder.name()).toUpperCase())
+        );
+    }
+
+    /**
+     * Get the lifetime for a new upload.
+     *
+     * @param requestedLifetime the lifetime requested by the uploader in milliseconds, or 0 for the default
+     * @param storageUsage      the current storage usage from 0.0 to 1.0
+     * @return the lifetime in milliseconds
+     */
+    public long getLifetime(long requestedLifetime, double storageUsage) {
+        long lifetime = requestedLifetime > 0L ? Math.max(minLifetime, Math.min(maxLifetime, requestedLifetime)) : defaultLifetime;
+        if (storageUsage > lowWatermark) {
+            double pressure = Math.min(1.0, (storageUsage - lowWatermark) / (highWatermark - lowWatermark));
+            lifetime = minLifetime + (long) ((double) (lifetime - minLifetime) * (1.0 - pressure));
+        }
+        return lifetime;
+    }
+
+    /**
+     * Get the key that stored files are sorted by when evicting, files with the lowest key are evicted first.
+     */
+    public long getEvictionKey(long uploaded, long size, long lastDownload) {
+        switch (evictionOrder) {
+            case LARGEST:
+                return -size;
+            case LEAST_RECENTLY_DOWNLOADED:
+                return Math.max(uploaded, lastDownload);
+            case OLDEST:
+            default:
+                return uploaded;
+        }
+    }
+
+    private static long getLong(String property, long defaultValue) {
+        try {
+            return Long.parseLong(System.getProperty(property));
+        } catch (Exception e) {
+            return defaultValue;
+        }
+    }
+
+    private static double getDouble(String property, double defaultValue) {
+        try {
+            return Double.parseDouble(System.getProperty(property));
+        } catch (Exception e) {
+            return defaultValue;
+        }
+    }
+}
@@ -2,36 +2,53 @@ package io.siggi.temporaryfilestore;
 
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
 import io.siggi.http.HTTPRequest;
 import io.siggi.http.HTTPServer;
 import io.siggi.http.HTTPServerBuilder;
 import io.siggi.http.io.MultipartFormDataParser;
 import io.siggi.http.util.HTMLUtils;
+import io.siggi.temporaryfilestore.FileStoreEvents.AntiScrapeEvent;
+import io.siggi.temporaryfilestore.FileStoreEvents.CleanupEvent;
+import io.siggi.temporaryfilestore.FileStoreEvents.DownloadEvent;
+import io.siggi.temporaryfilestore.FileStoreEvents.MetadataReadEvent;
+import io.siggi.temporaryfilestore.FileStoreEvents.UploadEvent;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStreamWriter;
 import java.io.RandomAccessFile;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.Predicate;
 import static io.siggi.http.util.HTMLUtils.htmlentities;
 import static io.siggi.http.util.Util.headerUrlEncode;
 import static io.siggi.temporaryfilestore.Util.copy;
+import static io.siggi.temporaryfilestore.Util.formatDuration;
+import static io.siggi.temporaryfilestore.Util.getDateFormat;
 import static io.siggi.temporaryfilestore.Util.getExtension;
 import static io.siggi.temporaryfilestore.Util.getServerLocation;
 import static io.siggi.temporaryfilestore.Util.gson;
 import static io.siggi.temporaryfilestore.Util.gsonPretty;
-import static io.siggi.temporaryfilestore.Util.longToDateString;
 import static io.siggi.temporaryfilestore.Util.randomDigits;
 import static io.siggi.temporaryfilestore.Util.readStringFromFile;
 import static io.siggi.temporaryfilestore.Util.writeStringToFile;
@@ -46,7 +63,7 @@ public class TemporaryFileStore {
         String root = System.getProperty("root", "store");
         if (root.endsWith("/") || root.endsWith("\\")) root = root.substring(0, root.length() - 1);
         try {
-            new TemporaryFileStore(port, new File(root)).start();
+            new TemporaryFileStore(port, new File(root), RetentionPolicy.fromSystemProperties()).start();
         } catch (Exception e) {
         }
     }
@@ -56,27 +73,61 @@ public class TemporaryFileStore {
     private final File storageRoot;
     private final File tmpDir;
     private final File resourcesDir;
+    private final File thumbnailRoot;
     private final HTTPServer httpServer;
+    private final ThumbnailGenerator thumbnailGenerator;
+    private final RetentionPolicy retentionPolicy;
+    private final AccessLog accessLog;
     private final String homepageFooter;
     private ServerSocket serverSocket;
 
     private boolean started = false;
     private boolean stopped = false;
 
-    private final Map<String, UploadInfo> uploadInfos = new HashMap<>();
+    private final Map<String, UploadInfo> uploadInfos = new ConcurrentHashMap<>();
+    private final Set<String> usedFileIds = ConcurrentHashMap.newKeySet();
+    // metadata of stored files by uploader, so /uploads doesn't have to read every file in storage
+    private final Map<UUID, Map<String, FileInfo>> uploaderFiles = new ConcurrentHashMap<>();
+    private final Map<String, UUID> fileUploaders = new ConcurrentHashMap<>();
+    private final Map<String, Long> lastDownloads = new ConcurrentHashMap<>();
+    private volatile double storageUsage = 0.0;
 
     private Thread listenerThread = null;
     private Thread cleanupThread = null;
+    private Thread retentionThread = null;
 
     public TemporaryFileStore(int port, File dataRoot) {
+        this(port, dataRoot, new RetentionPolicy());
+    }
+
+    public TemporaryFileStore(int port, File dataRoot, RetentionPolicy retentionPolicy) {
         this.port = port;
+        this.retentionPolicy = retentionPolicy;
         this.dataRoot = dataRoot;
         this.storageRoot = new File(dataRoot, "storage");
         this.tmpDir = new File(dataRoot, "tmp");
         this.resourcesDir = new File(dataRoot, "resources");
+        this.thumbnailRoot = new File(dataRoot, "thumbnails");
         if (!storageRoot.exists()) {
             storageRoot.mkdirs();
         }
+        if (!thumbnailRoot.exists()) {
+            thumbnailRoot.mkdirs();
+        }
+        File[] storedFiles = storageRoot.listFiles();
+        if (storedFiles != null) {
+            for (File storedFile : storedFiles) {
+                String name = storedFile.getName();
+                int dot = name.indexOf(".");
+                usedFileIds.add(dot < 0 ? name : name.substring(0, dot));
+                if (name.endsWith(".json")) {
+                    FileInfo fileInfo = readFileInfo(name.substring(0, name.length() - 5));
+                    if (fileInfo != null && fileInfo.uploaderUuid != null) {
+                        indexFile(fileInfo);
+                    }
+                }
+            }
+        }
         if (!tmpDir.exists()) {
             tmpDir.mkdirs();
         }
@@ -87,6 +138,8 @@ public class TemporaryFileStore {
             footer = "Put footer text in " + (dataRoot.getAbsolutePath()) + "/footer.txt and restart the server";
         }
         this.homepageFooter = footer;
+        this.thumbnailGenerator = new ThumbnailGenerator(thumbnailRoot, 2, 256);
+        this.accessLog = new AccessLog(new File(dataRoot, "logs"), 8192, 64L * 1024L * 1024L, 86400000L, 30);
         httpServer = new HTTPServerBuilder().setTmpDir(tmpDir).build();
         httpServer.responderRegistry.register("/", this::respond, true, true);
         httpServer.setIgnoringMultipartFormData(true);
@@ -95,6 +148,7 @@ public class TemporaryFileStore {
     public void start() throws IOException {
         if (started) throw new IllegalStateException("Already started");
         serverSocket = new ServerSocket(port);
+        accessLog.start();
         (listenerThread = new Thread(() -> {
             try {
                 while (true) {
@@ -107,24 +161,42 @@ public class TemporaryFileStore {
         (cleanupThread = new Thread(() -> {
             while (true) {
                 long now = System.currentTimeMillis();
+                CleanupEvent cleanupEvent = new CleanupEvent();
+                cleanupEvent.begin();
+                int filesDeleted = 0;
                 try {
                     File[] files = storageRoot.listFiles();
                     if (files != null)
                         for (File jsonFile : files) {
                             String name = jsonFile.getName();
                             if (!name.endsWith(".json")) continue;
-                            File dataFile = new File(jsonFile.getParentFile(), name.substring(0, name.length() - 5));
+                            String fileId = name.substring(0, name.length() - 5);
                             try {
                                 FileInfo fileInfo = gson.fromJson(readStringFromFile(jsonFile), FileInfo.class);
                                 if (fileInfo.expiry < now) {
-                                    dataFile.delete();
-                                    jsonFile.delete();
+                                    deleteStoredFile(fileId);
+                                    filesDeleted += 1;
                                 }
                             } catch (Exception e) {
                             }
                         }
                 } catch (Exception e) {
                 }
+                try {
+                    File[] thumbnails = thumbnailRoot.listFiles();
+                    if (thumbnails != null)
+                        for (File thumbnailFile : thumbnails) {
+                            String name = thumbnailFile.getName();
+                            int dot = name.indexOf(".");
+                            if (dot < 0) continue;
+                            String fileId = name.substring(0, dot);
+                            if (!new File(storageRoot, fileId).exists()) {
+                                thumbnailGenerator.delete(fileId);
+                                thumbnailFile.delete();
+                            }
+                        }
+                } catch (Exception e) {
+                }
                 long expiredLastUpdate = now - 600000L;
                 for (Iterator<Map.Entry<String, UploadInfo>> it = uploadInfos.entrySet().iterator(); it.hasNext(); ) {
                     Map.Entry<String, UploadInfo> entry = it.next();
@@ -132,12 +204,17 @@ public class TemporaryFileStore {
                     if (uploadInfo.getLastUpdate() < expiredLastUpdate) {
                         it.remove();
                         if (!uploadInfo.isComplete()) {
-                            new File(storageRoot, uploadInfo.getFileId()).delete();
-                            new File(storageRoot, uploadInfo.getFileId() + ".json").delete();
+                            deleteStoredFile(uploadInfo.getFileId());
+                            filesDeleted += 1;
+                        } else if (!new File(storageRoot, uploadInfo.getFileId() + ".json").exists()) {
+                            usedFileIds.remove(uploadInfo.getFileId());
                         }
                     }
                 }
                 cleanupAntiScrape();
+                cleanupEvent.kind = "expiry";
+                cleanupEvent.filesDeleted = filesDeleted;
+                cleanupEvent.commit();
                 try {
                     Thread.sleep(3600000L);
                 } catch (InterruptedException e) {
@@ -145,6 +222,19 @@ public class TemporaryFileStore {
                 }
             }
         })).start();
+        (retentionThread = new Thread(() -> {
+            while (true) {
+                try {
+                    evictUnderPressure();
+                } catch (Exception e) {
+                }
+                try {
+                    Thread.sleep(60000L);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        })).start();
         started = true;
     }
 
@@ -158,9 +248,45 @@ public class TemporaryFileStore {
             cleanupThread.interrupt();
         } catch (Exception e) {
         }
+        try {
+            retentionThread.interrupt();
+        } catch (Exception e) {
+        }
+        thumbnailGenerator.shutdown();
+        accessLog.stop(5L, TimeUnit.SECONDS);
     }
 
     private void respond(HTTPRequest request) throws Exception {
+        long start = System.nanoTime();
+        RequestLog requestLog = new RequestLog();
+        try {
+            handleRequest(request, requestLog);
+        } catch (Exception e) {
+            requestLog.status = 500;
+            throw e;
+        } finally {
+            accessLog.log(getRoute(request.url), requestLog.fileId, request.getIPAddress(), requestLog.deviceUuid, requestLog.bytes, requestLog.status, (System.nanoTime() - start) / 1000000L);
+        }
+    }
+
+    private String getRoute(String url) {
+        if (url.startsWith("/resources/")) return "resource";
+        if (url.startsWith("/upload/")) return "upload";
+        switch (url) {
+            case "/":
+                return "home";
+            case "/download":
+            case "/preupload":
+            case "/uploads":
+            case "/delete":
+            case "/upload":
+                return url.substring(1);
+            default:
+                return "file";
+        }
+    }
+
+    private void handleRequest(HTTPRequest request, RequestLog requestLog) throws Exception {
         long now = System.currentTimeMillis();
         String serverLocation = getServerLocation(request);
         final UUID deviceUuid;
@@ -178,12 +304,18 @@ public class TemporaryFileStore {
             deviceToken = token;
             deviceUuid = uuid;
         }
+        requestLog.deviceUuid = deviceUuid;
         Runnable setTokenCookie = () -> {
             long oneYearFromNow = now + (86400000L * 365L);
             request.response.setHeader("Set-Cookie", "token=" + deviceToken + "; path=/; expires=" + HTMLUtils.getSimpleDateFormat().format(new Date(oneYearFromNow)));
         };
         if (request.url.startsWith("/resources/")) {
-            if (request.url.contains("..")) return;
+            if (request.url.contains("..")) {
+                request.response.setHeader("404 Not Found");
+                requestLog.status = 404;
+                returnJarResource(request, "/web/404.html");
+                return;
+            }
             File overrideFile = new File(resourcesDir, request.url.substring(11));
             if (overrideFile.exists()) {
                 request.response.returnFile(overrideFile);
@@ -196,12 +328,14 @@ public class TemporaryFileStore {
             setTokenCookie.run();
             String homepageString = Util.readJarStringResource("/web/uploader.html");
             homepageString = homepageString.replace("$footer", homepageFooter);
+            homepageString = homepageString.replace("$lifetime", formatDuration(retentionPolicy.getLifetime(0L, storageUsage)));
             homepageString = homepageString.replace("$deviceuuid", deviceUuid.toString());
             request.response.write(homepageString);
             return;
         }
         if (request.url.equals("/download")) {
             String fileId = request.get.getOrDefault("fileid", request.post.get("fileid"));
+            requestLog.status = 302;
             if (fileId == null) {
                 request.response.redirect("/");
                 return;
@@ -216,6 +350,7 @@ public class TemporaryFileStore {
             try {
                 long size = Long.parseLong(request.post.get("size"));
                 UploadInfo uploadInfo = newUpload(deviceUuid, size);
+                requestLog.fileId = uploadInfo.getFileId();
                 setTokenCookie.run();
                 JsonObject result = new JsonObject();
                 result.addProperty("success", true);
@@ -234,20 +369,51 @@ public class TemporaryFileStore {
         }
         if (request.url.equals("/uploads")) {
             String timezone = request.post.getOrDefault("timezone", request.get.get("timezone"));
-            JsonArray array = new JsonArray();
-            List<FileInfo> allFiles = getAllFiles(file -> file.uploaderUuid.equals(deviceUuid));
-            allFiles.sort(Comparator.comparing(a -> a.expiry));
-            for (FileInfo fileInfo : allFiles) {
-                JsonObject object = new JsonObject();
-                array.add(object);
-                object.addProperty("file", fileInfo.fileName);
-                object.addProperty("fileId", fileInfo.fileId);
-                object.addProperty("link", serverLocation + "/" + fileInfo.fileId);
-                object.addProperty("expiry", longToDateString(fileInfo.expiry, timezone));
-                object.addProperty("epochExpiry", fileInfo.expiry);
+            String cursor = request.post.getOrDefault("cursor", request.get.get("cursor"));
+            String order = request.post.getOrDefault("order", request.get.get("order"));
+            int limit = Integer.MAX_VALUE;
+            try {
+                limit = Math.max(1, Integer.parseInt(request.post.getOrDefault("limit", request.get.get("limit"))));
+            } catch (Exception e) {
+            }
+            Comparator<FileInfo> comparator = Comparator.<FileInfo>comparingLong(a -> a.expiry).thenComparing(a -> a.fileId);
+            if ("desc".equals(order)) comparator = comparator.reversed();
+            Predicate<FileInfo> predicate = null;
+            if (cursor != null && !cursor.isEmpty()) {
+                FileInfo cursorPosition = decodeCursor(cursor);
+                if (cursorPosition == null) {
+                    request.response.setHeader("400 Bad Request");
+                    requestLog.status = 400;
+                    request.response.setContentType("application/json");
+                    request.response.write("[]");
+                    return;
+                }
+                Comparator<FileInfo> finalComparator = comparator;
+                predicate = file -> finalComparator.compare(file, cursorPosition) > 0;
+            }
+            List<FileInfo> files = getFirstFiles(deviceUuid, predicate, comparator, limit == Integer.MAX_VALUE ? limit : limit + 1);
+            if (files.size() > limit) {
+                files = files.subList(0, limit);
+                request.response.setHeader("X-TemporaryFileStore-Next-Cursor", encodeCursor(files.get(limit - 1)));
             }
+            SimpleDateFormat dateFormat = getDateFormat(timezone);
             request.response.setContentType("application/json");
-            request.response.write(gson.toJson(array));
+            JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(request.response, StandardCharsets.UTF_8)));
+            writer.beginArray();
+            for (FileInfo fileInfo : files) {
+                writer.beginObject();
+                writer.name("file").value(fileInfo.fileName);
+                writer.name("fileId").value(fileInfo.fileId);
+                writer.name("link").value(serverLocation + "/" + fileInfo.fileId);
+                if (thumbnailGenerator.hasThumbnail(fileInfo.fileId)) {
+                    writer.name("thumbnail").value(serverLocation + "/" + fileInfo.fileId + ".t");
+                }
+                writer.name("expiry").value(dateFormat.format(new Date(fileInfo.expiry)));
+                writer.name("epochExpiry").value(fileInfo.expiry);
+                writer.endObject();
+            }
+            writer.endArray();
+            writer.flush();
             return;
         }
         if (request.url.equals("/delete")) {
@@ -255,13 +421,12 @@ public class TemporaryFileStore {
             delete:
             try {
                 String fileId = request.post.get("fileId");
-                File dataFile = new File(storageRoot, fileId);
+                requestLog.fileId = fileId;
                 File jsonFile = new File(storageRoot, fileId + ".json");
                 if (!jsonFile.exists()) break delete;
                 FileInfo fileInfo = readFileInfo(fileId);
                 if (!fileInfo.uploaderUuid.equals(deviceUuid)) break delete;
-                dataFile.delete();
-                jsonFile.delete();
+                deleteStoredFile(fileId);
                 UploadInfo uploadInfo = getUploadInfo(fileId);
                 if (uploadInfo != null) {
                     uploadInfo.setCancelled(true);
@@ -274,6 +439,82 @@ public class TemporaryFileStore {
             request.response.write(gson.toJson(result));
             return;
         }
+        if ((request.url.equals("/upload") && request.method.equals("PUT")) || request.url.startsWith("/upload/")) {
+            if (!request.method.equals("PUT")) {
+                returnJarResource(request, "/web/404.html");
+                return;
+            }
+            String fileId = request.url.startsWith("/upload/") ? request.url.substring(8) : null;
+            long contentLength = -1L;
+            try {
+                contentLength = Long.parseLong(request.getHeader("Content-Length"));
+            } catch (Exception e) {
+            }
+            String fileName = request.getHeader("X-TemporaryFileStore-Filename");
+            fileName = fileName == null ? "upload" : URLDecoder.decode(fileName, "UTF-8");
+            String contentType = request.getHeader("Content-Type");
+            if (contentType == null) contentType = "application/octet-stream";
+            long requestedLifetime = 0L;
+            try {
+                requestedLifetime = Long.parseLong(request.getHeader("X-TemporaryFileStore-Lifetime")) * 1000L;
+            } catch (Exception e) {
+            }
+            UploadEvent uploadEvent = new UploadEvent();
+            uploadEvent.begin();
+            UploadInfo uploadInfo = claimUpload(fileId, deviceUuid, contentLength);
+            FileInfo fileInfo = new FileInfo(uploadInfo.getFileId(), fileName, contentType, now + retentionPolicy.getLifetime(requestedLifetime, storageUsage), request.getIPAddress(), deviceUuid);
+            requestLog.fileId = fileInfo.fileId;
+            File dataFile = new File(storageRoot, fileInfo.fileId);
+            writeStringToFile(new File(storageRoot, fileInfo.fileId + ".json"), gsonPretty.toJson(fileInfo));
+            // without a Content-Length the body is read to the end, the HTTP server takes care of chunked encoding
+            long copied = 0L;
+            try (FileOutputStream out = new FileOutputStream(dataFile)) {
+                // only list the upload once the data file exists, so anyone who sees it in /uploads can download it
+                indexFile(fileInfo);
+                byte[] buffer = new byte[65536];
+                while (contentLength < 0L || copied < contentLength) {
+                    int length = buffer.length;
+                    if (contentLength >= 0L && contentLength - copied < length) {
+                        length = (int) (contentLength - copied);
+                    }
+                    int c = request.inStream.read(buffer, 0, length);
+                    if (c < 0) break;
+                    out.write(buffer, 0, c);
+                    copied += c;
+                    // update after every read so downloads of this upload never wait long for new data
+                    uploadInfo.setAvailableData(copied);
+                }
+            } catch (IOException e) {
+                cancelUpload(uploadInfo);
+                throw e;
+            } finally {
+                requestLog.bytes = copied;
+                uploadEvent.bytes = copied;
+            }
+            if (contentLength >= 0L && copied != contentLength) {
+                cancelUpload(uploadInfo);
+                request.response.setHeader("400 Bad Request");
+                requestLog.status = 400;
+                JsonObject result = new JsonObject();
+                result.addProperty("success", false);
+                request.response.setContentType("application/json");
+                request.response.write(gson.toJson(result));
+                return;
+            }
+            completeUpload(uploadInfo, fileInfo, dataFile);
+            uploadEvent.fileId = fileInfo.fileId;
+            uploadEvent.commit();
+            String timezone = request.getHeader("X-TemporaryFileStore-Timezone");
+            JsonObject object = new JsonObject();
+            object.addProperty("file", fileInfo.fileName);
+            object.addProperty("fileId", fileInfo.fileId);
+            object.addProperty("link", serverLocation + "/" + fileInfo.fileId);
+            object.addProperty("expiry", getDateFormat(timezone).format(new Date(fileInfo.expiry)));
+            object.addProperty("epochExpiry", fileInfo.expiry);
+            request.response.setContentType("application/json");
+            request.response.write(gson.toJson(object));
+            return;
+        }
         if (request.url.equals("/upload")) {
             String uploadContentType = request.getHeader("Content-Type");
             if (uploadContentType == null) uploadContentType = "";
@@ -284,15 +525,17 @@ public class TemporaryFileStore {
             MultipartFormDataParser formDataParser = new MultipartFormDataParser(request.inStream, uploadContentType, httpServer.getHeaderSizeLimit());
 
             boolean jsonResponse = false;
+            boolean jsonArray = false;
             String timezone = null;
             String fileId = null;
-            FileInfo fileInfo = null;
+            long requestedLifetime = 0L;
+            List<FileInfo> uploadedFiles = new ArrayList<>();
             MultipartFormDataParser.Part part;
-            UploadInfo uploadInfo = null;
             while ((part = formDataParser.nextPart()) != null) {
                 switch (part.getName()) {
                     case "json":
                         jsonResponse = true;
+                        jsonArray = "array".equals(part.getValue());
                         break;
                     case "timezone":
                         timezone = part.getValue();
@@ -300,24 +543,25 @@ public class TemporaryFileStore {
                     case "fileId":
                         fileId = part.getValue();
                         break;
-                    case "file": {
-                        if (fileId != null) {
-                            uploadInfo = getUploadInfo(fileId);
-                            if (!uploadInfo.getUploader().equals(deviceUuid) || uploadInfo.getAvailableData() > 0L) {
-                                uploadInfo = null;
-                                fileId = null;
-                            }
+                    case "lifetime":
+                        try {
+                            requestedLifetime = Long.parseLong(part.getValue()) * 1000L;
+                        } catch (NumberFormatException e) {
                         }
-                        if (fileId == null) {
-                            uploadInfo = newUpload(deviceUuid, -1L);
-                            fileId = uploadInfo.getFileId();
-                        }
-                        fileInfo = new FileInfo(uploadInfo.getFileId(), part.getFilename(), part.getContentType(), now + (60L * 60L * 24L * 2L * 1000L), request.getIPAddress(), deviceUuid);
-                        File dataFile = new File(storageRoot, fileId);
-                        File jsonFile = new File(storageRoot, fileId + ".json");
+                        break;
+                    case "file": {
+                        UploadEvent uploadEvent = new UploadEvent();
+                        uploadEvent.begin();
+                        UploadInfo uploadInfo = claimUpload(fileId, deviceUuid, -1L);
+                        // a fileId part only applies to the file part that follows it
+                        fileId = null;
+                        FileInfo fileInfo = new FileInfo(uploadInfo.getFileId(), part.getFilename(), part.getContentType(), now + retentionPolicy.getLifetime(requestedLifetime, storageUsage), request.getIPAddress(), deviceUuid);
+                        File dataFile = new File(storageRoot, uploadInfo.getFileId());
+                        File jsonFile = new File(storageRoot, uploadInfo.getFileId() + ".json");
                         writeStringToFile(jsonFile, gsonPretty.toJson(fileInfo));
                         InputStream in = part.getInputStream();
                         try (FileOutputStream out = new FileOutputStream(dataFile)) {
+                            indexFile(fileInfo);
                             byte[] buffer = new byte[4096];
                             long copied = 0L;
                             int c;
@@ -326,28 +570,49 @@ public class TemporaryFileStore {
                                 copied += c;
                                 uploadInfo.setAvailableData(copied);
                             }
+                            requestLog.bytes += copied;
+                            uploadEvent.bytes = copied;
                         }
-                        uploadInfo.setComplete(true);
+                        completeUpload(uploadInfo, fileInfo, dataFile);
+                        uploadEvent.fileId = fileInfo.fileId;
+                        uploadEvent.commit();
+                        uploadedFiles.add(fileInfo);
+                        requestLog.fileId = requestLog.fileId == null ? fileInfo.fileId : requestLog.fileId + "," + fileInfo.fileId;
                     }
                     break;
                 }
             }
-            String link = serverLocation + "/" + fileId;
-            String expires = longToDateString(fileInfo.expiry, timezone);
+            if (uploadedFiles.isEmpty()) {
+                returnJarResource(request, "/web/404.html");
+                return;
+            }
+            SimpleDateFormat dateFormat = getDateFormat(timezone);
             if (jsonResponse) {
-                JsonObject object = new JsonObject();
-                object.addProperty("file", fileInfo.fileName);
-                object.addProperty("fileId", fileId);
-                object.addProperty("link", link);
-                object.addProperty("expiry", expires);
-                object.addProperty("epochExpiry", fileInfo.expiry);
+                JsonArray array = new JsonArray();
+                for (FileInfo fileInfo : uploadedFiles) {
+                    JsonObject object = new JsonObject();
+                    array.add(object);
+                    object.addProperty("file", fileInfo.fileName);
+                    object.addProperty("fileId", fileInfo.fileId);
+                    object.addProperty("link", serverLocation + "/" + fileInfo.fileId);
+                    object.addProperty("expiry", dateFormat.format(new Date(fileInfo.expiry)));
+                    object.addProperty("epochExpiry", fileInfo.expiry);
+                }
                 request.response.setContentType("application/json");
-                request.response.write(gson.toJson(object));
+                // json=array always gets an array, other clients only ever sent one file and expect a plain object
+                request.response.write(gson.toJson(array.size() == 1 && !jsonArray ? array.get(0) : array));
             } else {
+                String uploadCompleteFileString = Util.readJarStringResource("/web/uploadcompletefile.html");
+                StringBuilder uploads = new StringBuilder();
+                for (FileInfo fileInfo : uploadedFiles) {
+                    String link = serverLocation + "/" + fileInfo.fileId;
+                    uploads.append(uploadCompleteFileString
+                        .replace("$filename", htmlentities(fileInfo.fileName))
+                        .replace("$link", link)
+                        .replace("$expires", dateFormat.format(new Date(fileInfo.expiry))));
+                }
                 String uploadCompleteString = Util.readJarStringResource("/web/uploadcomplete.html")
-                    .replace("$filename", htmlentities(fileInfo.fileName))
-                    .replace("$link", link)
-                    .replace("$expires", expires);
+                    .replace("$uploads", uploads.toString());
                 request.response.write(uploadCompleteString);
             }
             return;
@@ -356,16 +621,32 @@ public class TemporaryFileStore {
         {
             String fileId = request.url.substring(1);
             boolean forceInline = false;
+            boolean thumbnail = false;
             if (fileId.endsWith(".i")) {
                 fileId = fileId.substring(0, fileId.length() - 2);
                 forceInline = true;
+            } else if (fileId.endsWith(".t")) {
+                fileId = fileId.substring(0, fileId.length() - 2);
+                thumbnail = true;
             }
             if (fileId.contains("/") || fileId.contains(".")) {
                 break fileDownload;
             }
-            if (getFailCount(request.getIPAddress()) >= 5) {
+            requestLog.fileId = fileId;
+            AntiScrapeEvent antiScrapeEvent = new AntiScrapeEvent();
+            antiScrapeEvent.begin();
+            long failCount = getFailCount(request.getIPAddress());
+            antiScrapeEvent.end();
+            if (antiScrapeEvent.shouldCommit()) {
+                antiScrapeEvent.ip = request.getIPAddress();
+                antiScrapeEvent.failCount = failCount;
+                antiScrapeEvent.blocked = failCount >= 5;
+                antiScrapeEvent.commit();
+            }
+            if (failCount >= 5) {
                 recordFail(request.getIPAddress());
                 request.response.setHeader("429 Too Many Requests");
+                requestLog.status = 429;
                 returnJarResource(request, "/web/429.html");
                 return;
             }
@@ -379,6 +660,17 @@ public class TemporaryFileStore {
             if (fileInfo == null || fileInfo.expiry < now) {
                 break fileDownload;
             }
+            if (thumbnail) {
+                File thumbnailFile = thumbnailGenerator.getThumbnailFile(fileId);
+                if (!thumbnailFile.exists()) {
+                    break fileDownload;
+                }
+                request.response.setHeader("Content-Disposition", "inline");
+                requestLog.bytes = -1L;
+                if (request.getHeader("Range") != null) requestLog.status = -1;
+                request.response.returnFile(thumbnailFile, "image/jpeg");
+                return;
+            }
             String displayType = "attachment";
             String contentType = httpServer.getMimeType(getExtension(fileInfo.fileName));
             if (fileInfo.contentType.startsWith("image/")) displayType = "inline";
@@ -390,10 +682,12 @@ public class TemporaryFileStore {
                 }
             }
             request.response.setHeader("Content-Disposition", displayType + "; filename=\"" + headerUrlEncode(fileInfo.fileName) + "\"");
-            returnFile(request, fileId, fileInfo, dataFile, contentType);
+            lastDownloads.put(fileId, now);
+            returnFile(request, requestLog, fileId, fileInfo, dataFile, contentType);
             return;
         }
         request.response.setHeader("404 Not Found");
+        requestLog.status = 404;
         returnJarResource(request, "/web/404.html");
     }
 
@@ -402,14 +696,44 @@ public class TemporaryFileStore {
         return false;
     }
 
-    private void returnFile(HTTPRequest request, String fileId, FileInfo fileInfo, File dataFile, String contentType) throws Exception {
+    private void returnFile(HTTPRequest request, RequestLog requestLog, String fileId, FileInfo fileInfo, File dataFile, String contentType) throws Exception {
+        DownloadEvent downloadEvent = new DownloadEvent();
+        downloadEvent.begin();
+        downloadEvent.fileId = fileId;
+        downloadEvent.bytesKnown = true;
         UploadInfo uploadInfo = getUploadInfo(fileId);
         if (uploadInfo == null || uploadInfo.isComplete()) {
+            // a completed upload never changes until it expires, so it can be cached until then
+            long lastModified = dataFile.lastModified();
+            String etag = "\"" + fileId + "-" + Long.toHexString(dataFile.length()) + "-" + Long.toHexString(lastModified) + "\"";
+            long maxAge = Math.max(0L, (fileInfo.expiry - System.currentTimeMillis()) / 1000L);
             request.response.setHeader("X-TemporaryFileStore-Upload-Status", "complete");
+            request.response.setHeader("ETag", etag);
+            request.response.setHeader("Last-Modified", HTMLUtils.getSimpleDateFormat().format(new Date(lastModified)));
+            request.response.setHeader("Cache-Control", "public, max-age=" + maxAge + ", immutable");
+            if (isNotModified(request, etag, lastModified)) {
+                request.response.setHeader("304 Not Modified");
+                requestLog.status = 304;
+                downloadEvent.commit();
+                return;
+            }
+            // the HTTP server handles Range and writes the body itself, so the status and byte count aren't known here
+            requestLog.bytes = -1L;
+            if (request.getHeader("Range") == null) {
+                downloadEvent.bytes = dataFile.length();
+            } else {
+                requestLog.status = -1;
+                downloadEvent.bytesKnown = false;
+            }
             request.response.returnFile(dataFile, contentType);
+            downloadEvent.commit();
             return;
         }
+        downloadEvent.streamed = true;
+        // only take the extra timestamps when the event is being recorded
+        boolean timed = downloadEvent.isEnabled();
         request.response.setHeader("X-TemporaryFileStore-Upload-Status", "incomplete");
+        request.response.setHeader("Cache-Control", "no-store");
         boolean partialContent = false;
         long seekTo = -1L;
         long stopAt = -1L;
@@ -446,6 +770,7 @@ public class TemporaryFileStore {
                 request.response.contentLength(stopAt - seekTo);
                 request.response.setHeader("Content-Range", "bytes " + seekTo + "-" + (stopAt - 1) + "/" + fileSize);
                 request.response.setHeader("206 Partial Content");
+                requestLog.status = 206;
             } else {
                 request.response.contentLength(fileSize);
             }
@@ -457,10 +782,16 @@ public class TemporaryFileStore {
             }
             long amountTransferred = 0L;
             byte[] buffer = new byte[4096];
+            long timestamp = 0L;
             while (amountTransferred < fileSize) {
+                if (timed) timestamp = System.nanoTime();
                 int amountRead = raf.read(buffer, 0, buffer.length);
+                if (timed) downloadEvent.readTime += System.nanoTime() - timestamp;
                 if (amountRead <= 0) {
+                    if (timed) timestamp = System.nanoTime();
                     uploadInfo.waitForData();
+                    if (timed) downloadEvent.waitTime += System.nanoTime() - timestamp;
+                    downloadEvent.waits += 1;
                     continue;
                 }
                 int amountToWrite = amountRead;
@@ -470,69 +801,266 @@ public class TemporaryFileStore {
                     }
                     transferLimit -= amountToWrite;
                 }
+                if (timed) timestamp = System.nanoTime();
                 request.response.write(buffer, 0, amountToWrite);
+                if (timed) downloadEvent.writeTime += System.nanoTime() - timestamp;
                 amountTransferred += amountToWrite;
+                requestLog.bytes = amountTransferred;
+                downloadEvent.bytes = amountTransferred;
                 if (transferLimit == 0L) {
                     break;
                 }
             }
+        } finally {
+            downloadEvent.commit();
         }
     }
 
+    private boolean isNotModified(HTTPRequest request, String etag, long lastModified) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) tag = tag.substring(2);
+                if (tag.equals("*") || tag.equals(etag)) return true;
+            }
+            // If-Modified-Since is ignored when If-None-Match is present
+            return false;
+        }
+        String ifModifiedSince = request.getHeader("If-Modified-Since");
+        if (ifModifiedSince != null) {
+            try {
+                long since = HTMLUtils.getSimpleDateFormat().parse(ifModifiedSince).getTime();
+                return lastModified / 1000L <= since / 1000L;
+            } catch (Exception e) {
+            }
+        }
+        return false;
+    }
+
     private UploadInfo newUpload(UUID uploader, long size) {
-        synchronized (uploadInfos) {
-            String fileId;
-            int nextRandomDigits = 6;
-            do {
-                fileId = randomDigits(nextRandomDigits++);
-            } while (!canUseFileId(fileId));
-            UploadInfo info = new UploadInfo(fileId, uploader, size);
-            uploadInfos.put(fileId, info);
-            return info;
+        String fileId;
+        int nextRandomDigits = 6;
+        // usedFileIds mirrors the storage directory, so claiming an ID is a single atomic add
+        do {
+            fileId = randomDigits(nextRandomDigits++);
+        } while (!usedFileIds.add(fileId));
+        UploadInfo info = new UploadInfo(fileId, uploader, size);
+        uploadInfos.put(fileId, info);
+        return info;
+    }
+
+    /**
+     * Get the upload reserved by /preupload for the given fileId, or start a new upload if the fileId can't be used.
+     */
+    private UploadInfo claimUpload(String fileId, UUID uploader, long size) {
+        if (fileId != null) {
+            UploadInfo uploadInfo = getUploadInfo(fileId);
+            if (uploadInfo != null && uploadInfo.getUploader().equals(uploader) && uploadInfo.getAvailableData() == 0L) {
+                return uploadInfo;
+            }
+        }
+        return newUpload(uploader, size);
+    }
+
+    private void cancelUpload(UploadInfo uploadInfo) {
+        uploadInfo.setCancelled(true);
+        deleteStoredFile(uploadInfo.getFileId());
+    }
+
+    private void completeUpload(UploadInfo uploadInfo, FileInfo fileInfo, File dataFile) {
+        uploadInfo.setComplete(true);
+        if (fileInfo.contentType != null && fileInfo.contentType.startsWith("image/")) {
+            thumbnailGenerator.submit(fileInfo.fileId, dataFile);
         }
     }
 
     private UploadInfo getUploadInfo(String fileId) {
-        synchronized (uploadInfos) {
-            return uploadInfos.get(fileId);
+        return uploadInfos.get(fileId);
+    }
+
+    private void indexFile(FileInfo fileInfo) {
+        fileUploaders.put(fileInfo.fileId, fileInfo.uploaderUuid);
+        // insert inside compute so a concurrent delete of the uploader's last file can't drop the map we're adding to
+        uploaderFiles.compute(fileInfo.uploaderUuid, (uuid, files) -> {
+            if (files == null) files = new ConcurrentHashMap<>();
+            files.put(fileInfo.fileId, fileInfo);
+            return files;
+        });
+    }
+
+    private void deleteStoredFile(String fileId) {
+        UUID uploader = fileUploaders.remove(fileId);
+        if (uploader != null) {
+            uploaderFiles.computeIfPresent(uploader, (uuid, files) -> {
+                files.remove(fileId);
+                return files.isEmpty() ? null : files;
+            });
+        }
+        new File(storageRoot, fileId).delete();
+        new File(storageRoot, fileId + ".json").delete();
+        thumbnailGenerator.delete(fileId);
+        lastDownloads.remove(fileId);
+        if (!uploadInfos.containsKey(fileId)) {
+            usedFileIds.remove(fileId);
         }
     }
 
-    private boolean canUseFileId(String fileId) {
-        if (uploadInfos.containsKey(fileId)) return false;
-        File fileData = new File(storageRoot, fileId);
-        File fileJson = new File(storageRoot, fileId + ".json");
-        return !fileData.exists() && !fileJson.exists();
+    private void evictUnderPressure() {
+        if (retentionPolicy.storageLimit == 0L) return;
+        long now = System.currentTimeMillis();
+        CleanupEvent event = new CleanupEvent();
+        event.begin();
+        event.kind = "eviction";
+        List<FileInfo> candidates = new ArrayList<>();
+        for (Map<String, FileInfo> files : uploaderFiles.values()) {
+            for (FileInfo fileInfo : files.values()) {
+                UploadInfo uploadInfo = getUploadInfo(fileInfo.fileId);
+                if (uploadInfo != null && !uploadInfo.isComplete()) continue;
+                // files whose expiry was shortened are deleted on time instead of on the next hourly cleanup
+                if (fileInfo.expiry < now) {
+                    deleteStoredFile(fileInfo.fileId);
+                    event.filesDeleted += 1;
+                } else {
+                    candidates.add(fileInfo);
+                }
+            }
+        }
+        long storedBytes = 0L;
+        File[] files = storageRoot.listFiles();
+        if (files != null)
+            for (File file : files) {
+                storedBytes += file.length();
+            }
+        double usage = getStorageUsage(storedBytes);
+        long capacity = retentionPolicy.storageLimit;
+        if (capacity < 0L) {
+            capacity = storageRoot.getTotalSpace();
+            // when other data on the disk is past the low watermark on its own, deleting our files can't fix it
+            if (capacity <= 0L || usage - ((double) storedBytes / (double) capacity) > retentionPolicy.lowWatermark) {
+                usage = 0.0;
+            }
+        }
+        storageUsage = usage;
+        if (usage > retentionPolicy.lowWatermark) {
+            Map<String, Long> evictionKeys = new HashMap<>();
+            for (FileInfo fileInfo : candidates) {
+                File dataFile = new File(storageRoot, fileInfo.fileId);
+                long uploaded = dataFile.lastModified();
+                evictionKeys.put(fileInfo.fileId, retentionPolicy.getEvictionKey(uploaded, dataFile.length(), lastDownloads.getOrDefault(fileInfo.fileId, uploaded)));
+            }
+            candidates.sort(Comparator.comparing(fileInfo -> evictionKeys.get(fileInfo.fileId)));
+            if (usage >= retentionPolicy.highWatermark) {
+                for (FileInfo fileInfo : candidates) {
+                    if (usage <= retentionPolicy.lowWatermark || storedBytes <= 0L) break;
+                    File dataFile = new File(storageRoot, fileInfo.fileId);
+                    File jsonFile = new File(storageRoot, fileInfo.fileId + ".json");
+                    storedBytes -= dataFile.length() + jsonFile.length();
+                    deleteStoredFile(fileInfo.fileId);
+                    event.filesDeleted += 1;
+                    usage = storageUsage = getStorageUsage(storedBytes);
+                }
+            } else {
+                // between the watermarks, give enough files to bring usage down to the low watermark the same shorter
+                // lifetime a new upload would get, so their listed expiry is when they'll actually be deleted
+                long expiry = now + retentionPolicy.getLifetime(0L, usage);
+                long excessBytes = (long) ((usage - retentionPolicy.lowWatermark) * (double) capacity);
+                for (FileInfo fileInfo : candidates) {
+                    if (excessBytes <= 0L) break;
+                    excessBytes -= new File(storageRoot, fileInfo.fileId).length();
+                    if (fileInfo.expiry > expiry) {
+                        shortenExpiry(fileInfo, expiry);
+                    }
+                }
+            }
+        }
+        event.commit();
+    }
+
+    private void shortenExpiry(FileInfo fileInfo, long expiry) {
+        FileInfo shortened = new FileInfo(fileInfo.fileId, fileInfo.fileName, fileInfo.contentType, expiry, fileInfo.uploaderIp, fileInfo.uploaderUuid);
+        // inside computeIfPresent so a concurrent delete can't leave a rewritten .json behind without its data file
+        uploaderFiles.computeIfPresent(fileInfo.uploaderUuid, (uuid, files) -> {
+            if (files.containsKey(fileInfo.fileId)) {
+                File tmpFile = new File(storageRoot, fileInfo.fileId + ".json.tmp");
+                try {
+                    writeStringToFile(tmpFile, gsonPretty.toJson(shortened));
+                    if (tmpFile.renameTo(new File(storageRoot, fileInfo.fileId + ".json"))) {
+                        files.put(fileInfo.fileId, shortened);
+                    } else {
+                        tmpFile.delete();
+                    }
+                } catch (IOException e) {
+                    tmpFile.delete();
+                }
+            }
+            return files;
+        });
+    }
+
+    private double getStorageUsage(long storedBytes) {
+        if (retentionPolicy.storageLimit > 0L) {
+            return (double) storedBytes / (double) retentionPolicy.storageLimit;
+        }
+        long totalSpace = storageRoot.getTotalSpace();
+        if (totalSpace <= 0L) return 0.0;
+        return 1.0 - ((double) storageRoot.getUsableSpace() / (double) totalSpace);
     }
 
     private FileInfo readFileInfo(String fileId) {
         File jsonFile = new File(storageRoot, fileId + ".json");
+        MetadataReadEvent event = new MetadataReadEvent();
+        event.begin();
+        event.fileId = fileId;
         try {
             FileInfo fileInfo = gson.fromJson(readStringFromFile(jsonFile), FileInfo.class);
             fileInfo.fileId = fileId;
+            event.found = true;
             return fileInfo;
         } catch (Exception e) {
             return null;
+        } finally {
+            event.commit();
         }
     }
 
-    private List<FileInfo> getAllFiles(Predicate<FileInfo> predicate) {
-        List<FileInfo> files;
-        File[] fileList = storageRoot.listFiles();
-        if (fileList == null) {
+    /**
+     * Get an uploader's files that come first in the given order, without copying or sorting all of them.
+     */
+    private List<FileInfo> getFirstFiles(UUID uploader, Predicate<FileInfo> predicate, Comparator<FileInfo> order, int limit) {
+        Map<String, FileInfo> files = uploaderFiles.get(uploader);
+        if (files == null) {
             return new ArrayList<>();
         }
-        files = new ArrayList<>(fileList.length / 2);
-        for (File f : fileList) {
-            String name = f.getName();
-            if (!name.endsWith(".json")) continue;
-            String fileId = name.substring(0, name.length() - 5);
-            FileInfo fileInfo = readFileInfo(fileId);
-            if (fileInfo != null && (predicate == null || predicate.test(fileInfo))) {
-                files.add(fileInfo);
+        PriorityQueue<FileInfo> queue = new PriorityQueue<>(order.reversed());
+        for (FileInfo fileInfo : files.values()) {
+            if (predicate != null && !predicate.test(fileInfo)) continue;
+            queue.add(fileInfo);
+            if (queue.size() > limit) {
+                queue.poll();
             }
         }
-        return files;
+        List<FileInfo> firstFiles = new ArrayList<>(queue);
+        firstFiles.sort(order);
+        return firstFiles;
+    }
+
+    private String encodeCursor(FileInfo fileInfo) {
+        String cursor = fileInfo.expiry + ":" + fileInfo.fileId;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(cursor.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private FileInfo decodeCursor(String cursor) {
+        try {
+            String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            int colon = decoded.indexOf(":");
+            FileInfo fileInfo = new FileInfo();
+            fileInfo.expiry = Long.parseLong(decoded.substring(0, colon));
+            fileInfo.fileId = decoded.substring(colon + 1);
+            return fileInfo;
+        } catch (Exception e) {
+            return null;
+        }
     }
 
     private boolean returnJarResource(HTTPRequest request, String url) {
@@ -546,6 +1074,13 @@ public class TemporaryFileStore {
         return false;
     }
 
+    private static class RequestLog {
+        private String fileId;
+        private UUID deviceUuid;
+        private long bytes; // -1 when unknown
+        private int status = 200; // -1 when unknown
+    }
+
     private final Map<String, AntiScrape> antiScrapeMap = new HashMap<>();
     private final ReentrantReadWriteLock antiScrapeLock = new ReentrantReadWriteLock();
     private final ReentrantReadWriteLock.ReadLock antiScrapeRead = antiScrapeLock.readLock();
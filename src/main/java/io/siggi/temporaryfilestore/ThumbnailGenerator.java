@@ -0,0 +1,128 @@
+package io.siggi.temporaryfilestore;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+public class ThumbnailGenerator {
+    private static final int THUMBNAIL_SIZE = 256;
+    private static final long MAX_SOURCE_PIXELS = 100000000L;
+
+    private final File thumbnailRoot;
+    private final ThreadPoolExecutor executor;
+    // kept in memory so listing files doesn't need a stat per file to find out which ones have a thumbnail
+    private final Set<String> thumbnails = ConcurrentHashMap.newKeySet();
+
+    public ThumbnailGenerator(File thumbnailRoot, int threads, int queueSize) {
+        this.thumbnailRoot = thumbnailRoot;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueSize), runnable -> {
+            Thread thread = new Thread(runnable, "ThumbnailGenerator-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }, new ThreadPoolExecutor.DiscardPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+        File[] files = thumbnailRoot.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(".jpg")) {
+                    thumbnails.add(name.substring(0, name.length() - 4));
+                }
+            }
+        }
+    }
+
+    public File getThumbnailFile(String fileId) {
+        return new File(thumbnailRoot, fileId + ".jpg");
+    }
+
+    public boolean hasThumbnail(String fileId) {
+        return thumbnails.contains(fileId);
+    }
+
+    public void submit(String fileId, File dataFile) {
+        executor.execute(() -> {
+            try {
+                generate(fileId, dataFile);
+            } catch (Exception e) {
+            }
+        });
+    }
+
+    public void delete(String fileId) {
+        thumbnails.remove(fileId);
+        getThumbnailFile(fileId).delete();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void generate(String fileId, File dataFile) throws Exception {
+        BufferedImage source;
+        try (ImageInputStream in = ImageIO.createImageInputStream(dataFile)) {
+            if (in == null) return;
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) return;
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                if ((long) width * (long) height > MAX_SOURCE_PIXELS) return;
+                // subsample while decoding so large photos never have to be held in memory at full size
+                int subsampling = Math.max(1, Math.max(width, height) / THUMBNAIL_SIZE);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                source = reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+        if (source == null) return;
+        double scale = Math.min(1.0, (double) THUMBNAIL_SIZE / (double) Math.max(source.getWidth(), source.getHeight()));
+        int width = Math.max(1, (int) Math.round(source.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(source.getHeight() * scale));
+        BufferedImage thumbnail = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = thumbnail.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, width, height);
+            g.drawImage(source, 0, 0, width, height, null);
+        } finally {
+            g.dispose();
+        }
+        File thumbnailFile = getThumbnailFile(fileId);
+        File tmpFile = new File(thumbnailRoot, fileId + ".jpg.tmp");
+        if (!ImageIO.write(thumbnail, "jpg", tmpFile)) {
+            tmpFile.delete();
+            return;
+        }
+        // the original may have been deleted while we were working on it
+        if (!dataFile.exists() || !tmpFile.renameTo(thumbnailFile)) {
+            tmpFile.delete();
+            return;
+        }
+        thumbnails.add(fileId);
+        if (!dataFile.exists()) {
+            delete(fileId);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package io.siggi.temporaryfilestore;
 
+import io.siggi.temporaryfilestore.FileStoreEvents.WaitForDataEvent;
 import java.io.IOException;
 import java.util.UUID;
 
@@ -21,6 +22,21 @@ public class UploadInfo {
     }
 
     public void waitForData() throws InterruptedException, IOException {
+        WaitForDataEvent event = new WaitForDataEvent();
+        event.begin();
+        try {
+            waitForUpdate();
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.fileId = fileId;
+                event.availableData = getAvailableData();
+                event.commit();
+            }
+        }
+    }
+
+    private void waitForUpdate() throws InterruptedException, IOException {
         synchronized (lock) {
             long recentUpdate = lastUpdate;
             long lastAvailable = availableData;
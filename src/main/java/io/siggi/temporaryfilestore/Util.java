@@ -16,7 +16,6 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.text.SimpleDateFormat;
-import java.util.Date;
 import java.util.TimeZone;
 import java.util.UUID;
 
@@ -51,6 +50,15 @@ public class Util {
         return file.substring(i + 1);
     }
 
+    public static String formatDuration(long millis) {
+        long minutes = millis / 60000L;
+        if (minutes % 60L != 0L) {
+            return minutes + (minutes == 1L ? " minute" : " minutes");
+        }
+        long hours = minutes / 60L;
+        return hours + (hours == 1L ? " hour" : " hours");
+    }
+
     public static String readJarStringResource(String file) {
         try {
             ByteArrayOutputStream out = new ByteArrayOutputStream();
@@ -77,9 +85,10 @@ public class Util {
     }
 
     private static final char[] digitCharset = "0123456789".toCharArray();
+    private static final ThreadLocal<SecureRandom> secureRandom = ThreadLocal.withInitial(SecureRandom::new);
 
     public static String randomDigits(int length) {
-        SecureRandom random = new SecureRandom();
+        SecureRandom random = secureRandom.get();
         char[] digits = new char[length];
         for (int i = 0; i < length; i++) {
             digits[i] = digitCharset[random.nextInt(digitCharset.length)];
@@ -95,7 +104,7 @@ public class Util {
         return protocol + "://" + host;
     }
 
-    public static String longToDateString(long date, String timezone) {
+    public static SimpleDateFormat getDateFormat(String timezone) {
         SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss Z");
         if (timezone != null) {
             try {
@@ -103,7 +112,7 @@ public class Util {
             } catch (Exception e) {
             }
         }
-        return sdf.format(new Date(date));
+        return sdf;
     }
 
     private static final char[] hexCharset = "0123456789abcdef".toCharArray();
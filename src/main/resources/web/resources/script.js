@@ -1,6 +1,15 @@
 (function () {
+    // small files are sent together in a single /upload request instead of one request pair each
+    const batchFileSizeLimit = 1048576;
+    const batchMaxFiles = 50;
+    const batchMaxSize = 8388608;
+    const uploadsPageSize = 50;
     let timezone;
     let uploadInfoDiv;
+    let uploadsCursor = null;
+    let uploadsLoading = false;
+    let loadMoreDiv;
+    let loadMoreObserver;
     const xhrPromise = function (xhr) {
         return new Promise((resolve, reject) => {
             xhr.onreadystatechange = function (e) {
@@ -98,6 +107,100 @@
             listItem.removeAllButtons();
         }
     };
+    const uploadBatch = async function (files) {
+        let listItems = [];
+        for (let i = 0; i < files.length; i++) {
+            let listItem = addFileItem(files[i].name);
+            listItem.setStatus("Waiting...");
+            listItems.push(listItem);
+        }
+
+        let formData = new FormData();
+        formData.append("json", "array");
+        formData.append("timezone", timezone);
+        for (let i = 0; i < files.length; i++) {
+            formData.append("file", files[i]);
+        }
+        let uploadXhr = new XMLHttpRequest();
+        uploadXhr.open("POST", "/upload");
+        let uploadPromise = xhrPromise(uploadXhr);
+        uploadXhr.upload.onprogress = function (e) {
+            if (!e.lengthComputable) {
+                return;
+            }
+            let progress = Math.floor((e.loaded / e.total) * 100);
+            for (let i = 0; i < listItems.length; i++) {
+                listItems[i].setStatus("Uploading: " + progress + "%");
+            }
+        }
+        uploadXhr.send(formData);
+        let uploadResult = null;
+        try {
+            uploadResult = JSON.parse(await uploadPromise);
+        } catch (e) {
+        }
+        if (uploadXhr.status != 200 || !Array.isArray(uploadResult)) {
+            for (let i = 0; i < listItems.length; i++) {
+                listItems[i].setStatus("Upload failed");
+            }
+            return;
+        }
+        for (let i = 0; i < listItems.length; i++) {
+            let listItem = listItems[i];
+            let fileInfo = uploadResult[i];
+            if (!fileInfo) {
+                listItem.setStatus("Upload failed");
+                continue;
+            }
+            listItem.setLink(fileInfo.fileId, fileInfo.link);
+            listItem.setStatus("Expires: " + fileInfo.expiry);
+            addUploadedFileButtons(listItem, fileInfo);
+        }
+    };
+    const uploadFiles = function (files) {
+        let batch = [];
+        let batchSize = 0;
+        for (let i = 0; i < files.length; i++) {
+            let file = files[i];
+            if (file.size > batchFileSizeLimit) {
+                uploadFile(file);
+                continue;
+            }
+            if (batch.length >= batchMaxFiles || batchSize + file.size > batchMaxSize) {
+                uploadBatch(batch);
+                batch = [];
+                batchSize = 0;
+            }
+            batch.push(file);
+            batchSize += file.size;
+        }
+        if (batch.length == 1) {
+            uploadFile(batch[0]);
+        } else if (batch.length > 0) {
+            uploadBatch(batch);
+        }
+    };
+    const addUploadedFileButtons = function (listItem, fileInfo) {
+        listItem.addButton("Copy Link", (e) => {
+            e.preventDefault();
+            navigator.clipboard.writeText(fileInfo.link);
+        });
+        listItem.addButton("Download", fileInfo.link);
+        listItem.addButton("Delete", async (e) => {
+            e.preventDefault();
+            if (!(await deleteFile(fileInfo.fileId))) {
+                listItem.setStatus("Unable to delete");
+                return;
+            }
+            listItem.setLink(null, null);
+            listItem.setStatus("(deleted)");
+            listItem.removeAllButtons();
+            listItem.addButton("Hide", (e) => {
+                e.preventDefault();
+                listItem.removeFromList();
+            })
+        });
+    };
     const deleteFile = async function (fileId) {
         let xhr = new XMLHttpRequest();
         xhr.open("POST", "/delete");
@@ -109,43 +212,42 @@
         return result.success;
     }
     const fetchPreviousUploads = async function () {
+        if (uploadsLoading) return;
+        uploadsLoading = true;
         let xhr = new XMLHttpRequest();
         xhr.open("POST", "/uploads");
         let fetchPromise = xhrPromise(xhr);
         xhr.setRequestHeader("Content-Type", "application/x-www-form-urlencoded");
-        xhr.send("timezone=" + timezone);
+        let body = "timezone=" + encodeURIComponent(timezone) + "&order=desc&limit=" + uploadsPageSize;
+        if (uploadsCursor) {
+            body += "&cursor=" + encodeURIComponent(uploadsCursor);
+        }
+        xhr.send(body);
 
-        let result = JSON.parse(await fetchPromise);
+        let responseText = await fetchPromise;
+        uploadsLoading = false;
+        uploadsCursor = xhr.getResponseHeader("X-TemporaryFileStore-Next-Cursor");
+        let result = JSON.parse(responseText);
         if (result.length == 0) return;
         uploadInfoDiv.style.display = "block";
 
         for (let i = 0; i < result.length; i++) {
-            let listItem = addFileItem(result[i].file);
+            let listItem = addFileItem(result[i].file, true);
             let fileInfo = result[i];
             listItem.setLink(fileInfo.fileId, fileInfo.link);
+            if (fileInfo.thumbnail) {
+                listItem.setThumbnail(fileInfo.thumbnail, fileInfo.link);
+            }
             listItem.setStatus("Expires: " + fileInfo.expiry);
-            listItem.addButton("Copy Link", (e) => {
-                e.preventDefault();
-                navigator.clipboard.writeText(fileInfo.link);
-            });
-            listItem.addButton("Download", fileInfo.link);
-            listItem.addButton("Delete", async (e) => {
-                e.preventDefault();
-                if (!(await deleteFile(fileInfo.fileId))) {
-                    listItem.setStatus("Unable to delete");
-                    return;
-                }
-                listItem.setLink(null, null);
-                listItem.setStatus("(deleted)");
-                listItem.removeAllButtons();
-                listItem.addButton("Hide", () => {
-                    e.preventDefault();
-                    listItem.removeFromList();
-                })
-            });
+            addUploadedFileButtons(listItem, fileInfo);
+        }
+        if (uploadsCursor) {
+            // observing again re-checks visibility in case this page didn't fill the screen
+            loadMoreObserver.unobserve(loadMoreDiv);
+            loadMoreObserver.observe(loadMoreDiv);
         }
     }
-    const addFileItem = function (fileName) {
+    const addFileItem = function (fileName, append) {
         uploadInfoDiv.style.display = "block";
 
         const createDiv = function (className) {
@@ -155,7 +257,7 @@
         }
 
         let uploadInfoBlock = createDiv("uploadinfo");
-        if (uploadInfoDiv.firstChild) {
+        if (uploadInfoDiv.firstChild && !append) {
             uploadInfoDiv.insertBefore(uploadInfoBlock, uploadInfoDiv.firstChild);
         } else {
             uploadInfoDiv.appendChild(uploadInfoBlock);
@@ -184,6 +286,17 @@
                 fileLink.href = link;
             }
         };
+        const setThumbnail = function (thumbnail, link) {
+            let thumbnailLink = document.createElement("A");
+            thumbnailLink.target = "_blank";
+            thumbnailLink.href = link;
+            let thumbnailImage = document.createElement("IMG");
+            thumbnailImage.className = "thumbnail";
+            thumbnailImage.loading = "lazy";
+            thumbnailImage.src = thumbnail;
+            thumbnailLink.appendChild(thumbnailImage);
+            uploadInfoBlock.insertBefore(thumbnailLink, fileNameDiv);
+        };
         const setStatus = function (text) {
             statusDiv.innerText = text;
         };
@@ -225,7 +338,7 @@
             uploadInfoDiv.removeChild(uploadInfoBlock);
         };
 
-        return {setLink, setStatus, addButton, removeButton, removeAllButtons, removeFromList};
+        return {setLink, setThumbnail, setStatus, addButton, removeButton, removeAllButtons, removeFromList};
     };
     window.addEventListener("load", () => {
         timezone = Intl.DateTimeFormat().resolvedOptions().timeZone;
@@ -237,17 +350,12 @@
         });
         topDiv.addEventListener("drop", (e) => {
             e.preventDefault();
-            for (let i = 0; i < e.dataTransfer.files.length; i++) {
-                let file = e.dataTransfer.files[i];
-                uploadFile(file);
-            }
+            uploadFiles(e.dataTransfer.files);
         });
 
         let fileField = document.getElementById("filefield");
         fileField.addEventListener("change", (e) => {
-            for (let i = 0; i < fileField.files.length; i++) {
-                uploadFile(fileField.files[i]);
-            }
+            uploadFiles(Array.from(fileField.files));
             fileField.value = "";
         });
 
@@ -266,6 +374,15 @@
         });
         form.parentNode.insertBefore(uploadButton, form);
 
+        loadMoreDiv = document.createElement("DIV");
+        uploadInfoDiv.parentNode.insertBefore(loadMoreDiv, uploadInfoDiv.nextSibling);
+        loadMoreObserver = new IntersectionObserver((entries) => {
+            if (entries[0].isIntersecting && uploadsCursor) {
+                fetchPreviousUploads();
+            }
+        });
+        loadMoreObserver.observe(loadMoreDiv);
+
         fetchPreviousUploads();
     });
 })();